@@ -0,0 +1,44 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Signature index kept on the heap. It is a hashmap with weak hash as keys
+ * and another hashmap as values. Inner hashmap is useful for quickly finding
+ * whether a block signature with a particular weak hash and strong hash
+ * exists. It has block signature as keys and id of the first block with
+ * that signature as values.
+ */
+class HeapSigIndex extends SigIndex {
+	private final Map<Integer, Map<BlockSig, Integer>> sigMap = new HashMap<>();
+
+	HeapSigIndex(ByteBuffer sigBufs[], int digestLen, byte zeroMd5[]) {
+		super(sigBufs, digestLen, zeroMd5);
+		for (int id = 0; id < blockCount; id++) {
+			if (isZeroBlock(id))
+				continue;
+			int hash = hash(id); // weak hash
+			byte md5[] = strongHash(id); // strong hash
+			BlockSig sig = new BlockSig(id, hash, md5);
+			Map<BlockSig, Integer> map = sigMap.getOrDefault(hash, new HashMap<>());
+			map.putIfAbsent(sig, sig.id);
+			sigMap.put(hash, map);
+		}
+	}
+
+	@Override
+	boolean contains(int hash) {
+		return sigMap.containsKey(hash);
+	}
+
+	@Override
+	int find(int hash, byte md5[]) {
+		// get block signatures with same weak hash
+		Map<BlockSig, Integer> map = sigMap.get(hash);
+		if (map == null)
+			return -1;
+		// get id of a block with matching signature
+		Integer id = map.get(new BlockSig(0, hash, md5));
+		return id == null ? -1 : id;
+	}
+}
@@ -1,10 +1,13 @@
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.stream.IntStream;
 
 public class JSync {
 	private MessageDigest md5;
@@ -12,9 +15,32 @@ public class JSync {
 	private final int sigLen; // length of block signature
 	private final int blockSize;
 	private RollingHash rollingHash;
+	private final byte zeroSig[]; // signature of a block of zeros
+	private boolean offHeapIndex; // keep signature index off the heap
+	private boolean verifyPrefix; // check aligned blocks first in generateDeltaFile
+	// strong hash for threads verifying a prefix in parallel
+	private final ThreadLocal<MessageDigest> threadMd5 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
 
 	private final static byte MISMATCH = 0;
 	private final static byte MATCH = 1;
+	private final static byte RANGE = 2;
+	// following MATCH and RANGE instructions refer to another base file
+	private final static byte BASE = 3;
+	// region of zeros, left as a hole in target file
+	private final static byte HOLE = 4;
+
+	// max number of base files kept open by applyDelta
+	private final static int MAX_OPEN_BASES = 16;
+	// number of blocks in the first and the largest batch verified by
+	// verifyPrefix
+	private final static int MIN_PREFIX_BATCH = 64;
+	private final static int MAX_PREFIX_BATCH = 16 * 1024;
 
 	JSync(int blockSize) {
 		try {
@@ -26,6 +52,36 @@ public class JSync {
 		rollingHash = new RollingHash(blockSize);
 		digestLen = md5.getDigestLength();
 		sigLen = digestLen + 4;
+		// weak hash of zeros is 0
+		zeroSig = new byte[sigLen];
+		md5.update(new byte[blockSize]);
+		try {
+			md5.digest(zeroSig, 4, digestLen);
+		} catch (DigestException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Check if bytes from start to end of arr are all zero
+	 */
+	private static boolean isZero(byte[] arr, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (arr[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Check if bytes from start to end of buf are all zero
+	 */
+	private static boolean isZero(ByteBuffer buf, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (buf.get(i) != 0)
+				return false;
+		}
+		return true;
 	}
 
 	private void writeIntToByteArray(byte[] arr, int i) {
@@ -45,6 +101,22 @@ public class JSync {
 		target.write(tmp, 0, len);
 	}
 
+	/*
+	 * Copy "len" number of bytes starting at offset from base file to target
+	 * file
+	 */
+	private void copyRange(RandomAccessFile base, BufferedOutputStream target, long offset, int len) throws IOException {
+		base.seek(offset);
+		byte buf[] = new byte[8024];
+		while (len != 0) {
+			int read = base.read(buf, 0, Math.min(len, buf.length));
+			if (read < 0)
+				throw new EOFException();
+			target.write(buf, 0, read);
+			len -= read;
+		}
+	}
+
 	/*
 	 * Copy "len" number of bytes from delta file to target file
 	 */
@@ -57,6 +129,143 @@ public class JSync {
 		}
 	}
 
+	/*
+	 * A region of the target file of a delta, copied either from a base file or
+	 * from a delta file
+	 */
+	private static class Segment {
+		final static int STORED = -1; // region is stored in a delta file
+		final static int ZEROS = -2; // region is all zeros
+
+		int len; // length of region
+		int base; // index of base file, or STORED or ZEROS
+		long offset; // position of region in base file or delta file
+		RandomAccessFile delta; // delta file holding the region if STORED
+
+		Segment(int len, int base, long offset, RandomAccessFile delta) {
+			this.len = len;
+			this.base = base;
+			this.offset = offset;
+			this.delta = delta;
+		}
+	}
+
+	/*
+	 * Add a region at the end of a layout, merging it with the last region if
+	 * they are contiguous
+	 */
+	private void addSegment(List<Segment> layout, Segment seg) {
+		if (seg.len == 0)
+			return;
+		if (!layout.isEmpty()) {
+			Segment last = layout.get(layout.size() - 1);
+			if (last.base == seg.base && last.delta == seg.delta && (seg.base == Segment.ZEROS || last.offset + last.len == seg.offset)
+					&& (long) last.len + seg.len <= Integer.MAX_VALUE) {
+				last.len += seg.len;
+				return;
+			}
+		}
+		layout.add(seg);
+	}
+
+	/*
+	 * Copy "len" number of bytes starting at offset from src to out
+	 */
+	private void copyBytes(RandomAccessFile src, DataOutputStream out, long offset, int len) throws IOException {
+		src.seek(offset);
+		byte buf[] = new byte[8024];
+		while (len != 0) {
+			int read = src.read(buf, 0, Math.min(len, buf.length));
+			if (read < 0)
+				throw new EOFException();
+			out.write(buf, 0, read);
+			len -= read;
+		}
+	}
+
+	/*
+	 * Read the layout of the target file of a delta file, i.e. the regions the
+	 * target file is made of, in order. Only the delta file is read, deltaData
+	 * must be the same delta file opened for random access.
+	 */
+	private List<Segment> readLayout(File deltaFile, RandomAccessFile deltaData) throws IOException {
+		List<Segment> layout = new ArrayList<>();
+		DataInputStream delta = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaFile)));
+		try {
+			long pos = 0; // position in delta file
+			int baseIndex = 0; // base file MATCH and RANGE refer to
+			while (delta.available() > 0) {
+				byte action = delta.readByte();
+				pos++;
+				if (action == MATCH) {
+					addSegment(layout, new Segment(blockSize, baseIndex, (long) delta.readInt() * blockSize, null));
+					pos += 4;
+				} else if (action == RANGE) {
+					long offset = delta.readLong();
+					addSegment(layout, new Segment(delta.readInt(), baseIndex, offset, null));
+					pos += 12;
+				} else if (action == BASE) {
+					baseIndex = delta.readInt();
+					pos += 4;
+				} else if (action == HOLE) {
+					addSegment(layout, new Segment(delta.readInt(), Segment.ZEROS, 0, null));
+					pos += 4;
+				} else {
+					int len = delta.readInt();
+					pos += 4;
+					addSegment(layout, new Segment(len, Segment.STORED, pos, deltaData));
+					for (int skipped = 0; skipped < len;)
+						skipped += delta.skipBytes(len - skipped);
+					pos += len;
+				}
+			}
+		} finally {
+			delta.close();
+		}
+		return layout;
+	}
+
+	/*
+	 * Write a layout as a delta file. Consecutive regions stored in delta
+	 * files are written as a single mismatched region.
+	 */
+	private void writeLayout(List<Segment> layout, DataOutputStream out) throws IOException {
+		int baseIndex = 0; // base file MATCH and RANGE refer to
+		for (int i = 0; i < layout.size();) {
+			Segment seg = layout.get(i);
+			if (seg.base >= 0) {
+				if (seg.base != baseIndex) {
+					out.write(BASE);
+					out.writeInt(seg.base);
+					baseIndex = seg.base;
+				}
+				if (seg.len == blockSize && seg.offset % blockSize == 0 && seg.offset / blockSize <= Integer.MAX_VALUE) {
+					out.write(MATCH);
+					out.writeInt((int) (seg.offset / blockSize));
+				} else {
+					out.write(RANGE);
+					out.writeLong(seg.offset);
+					out.writeInt(seg.len);
+				}
+				i++;
+			} else if (seg.base == Segment.ZEROS) {
+				out.write(HOLE);
+				out.writeInt(seg.len);
+				i++;
+			} else {
+				// find length of mismatched region
+				int j = i;
+				long len = 0;
+				while (j < layout.size() && layout.get(j).base == Segment.STORED && len + layout.get(j).len <= Integer.MAX_VALUE)
+					len += layout.get(j++).len;
+				out.write(MISMATCH);
+				out.writeInt((int) len);
+				for (; i < j; i++)
+					copyBytes(layout.get(i).delta, out, layout.get(i).offset, layout.get(i).len);
+			}
+		}
+	}
+
 	/*
 	 * Get the signature of next block, signature contains a weak hash and a
 	 * strong hash
@@ -67,6 +276,11 @@ public class JSync {
 		int len = Math.min(blockSize, srcBuf.remaining());
 		srcBuf.get(buf, 0, len);
 
+		// blocks of zeros are common (sparse and preallocated files), their
+		// signature is known in advance
+		if (len == blockSize && isZero(buf, 0, len))
+			return zeroSig;
+
 		rollingHash.reset();
 		rollingHash.update(buf, 0, len);
 		writeIntToByteArray(sig, rollingHash.getHash());
@@ -77,37 +291,147 @@ public class JSync {
 	}
 
 	/*
-	 * Load the signatures from the signature file into memory. This function
-	 * returns a hashmap with weak hash as keys and another hashmap as values.
-	 * Inner hashmap is useful for quickly finding whether a block signature
-	 * with a particular weak hash and strong hash exists. It has block
-	 * signature as keys and a list of block ids as values.
+	 * Calculate strong hash of bytes from start to end of buf
 	 */
-	private Map<Integer, Map<BlockSig, List<Integer>>> loadSigFile(File sigFile) throws IOException, InvalidSignatureFile {
-		Map<Integer, Map<BlockSig, List<Integer>>> sigMap = new HashMap<>();
-		FileInputStream fin = new FileInputStream(sigFile);
-		FileChannel inputChannel = fin.getChannel();
-		ByteBuffer srcBuf = inputChannel.map(FileChannel.MapMode.READ_ONLY, 0, inputChannel.size());
-		try {
-			int id = 0;
-			while (srcBuf.hasRemaining()) {
-				if (srcBuf.remaining() < sigLen) // invalid signature file
+	private byte[] strongHash(ByteBuffer buf, int start, int end) {
+		ByteBuffer block = buf.duplicate();
+		block.limit(end);
+		block.position(start);
+		md5.reset();
+		md5.update(block);
+		return md5.digest();
+	}
+
+	/*
+	 * Extend a match forwards from position pos of source and basePos of base
+	 * file as long as they agree, returns the new end of the match in source.
+	 * The match stops before a run of blockSize zeros, such a run is recorded
+	 * as a hole instead.
+	 */
+	private int extendMatch(ByteBuffer in, int pos, ByteBuffer base, int basePos) {
+		int zeros = 0; // number of zeros at the end of the extension
+		while (pos < in.limit() && basePos < base.limit() && in.get(pos) == base.get(basePos)) {
+			zeros = in.get(pos) == 0 ? zeros + 1 : 0;
+			pos++;
+			basePos++;
+			if (zeros == blockSize)
+				return pos - zeros;
+		}
+		return pos;
+	}
+
+	/*
+	 * Record bytes from start to end of source as a mismatched region
+	 */
+	private void writeMismatch(DataOutputStream deltaOut, ByteBuffer in, int start, int end) throws IOException {
+		if (start == end)
+			return;
+		deltaOut.write(MISMATCH);
+		deltaOut.writeInt(end - start);
+		ByteBuffer region = in.duplicate();
+		region.limit(end);
+		region.position(start);
+		byte buf[] = new byte[8024];
+		while (region.hasRemaining()) {
+			int len = Math.min(buf.length, region.remaining());
+			region.get(buf, 0, len);
+			deltaOut.write(buf, 0, len);
+		}
+	}
+
+	/*
+	 * Load the signatures from the signature files into a single index. The
+	 * returned index is kept off the heap if offHeapIndex is set.
+	 */
+	private SigIndex loadSigFiles(List<File> sigFiles) throws IOException, InvalidSignatureFile {
+		ByteBuffer sigBufs[] = new ByteBuffer[sigFiles.size()];
+		long blocks = 0; // number of blocks in all signature files
+		for (int i = 0; i < sigBufs.length; i++) {
+			File sigFile = sigFiles.get(i);
+			FileInputStream fin = new FileInputStream(sigFile);
+			FileChannel inputChannel = fin.getChannel();
+			try {
+				if (inputChannel.size() % sigLen != 0) // invalid signature file
 					throw new InvalidSignatureFile("Signature file is invalid : " + sigFile.getAbsolutePath());
-				int hash; // weak hash
-				byte md5[] = new byte[digestLen]; // strong hash
-				hash = srcBuf.getInt();
-				srcBuf.get(md5);
-				BlockSig sig = new BlockSig(id++, hash, md5);
-				Map<BlockSig, List<Integer>> map = sigMap.getOrDefault(hash, new HashMap<>());
-				List<Integer> blockIdlist = map.getOrDefault(sig, new LinkedList<>());
-				blockIdlist.add(sig.id);
-				map.put(sig, blockIdlist);
-				sigMap.put(hash, map);
+				blocks += inputChannel.size() / sigLen;
+				if (blocks > Integer.MAX_VALUE) // block ids are ints
+					throw new InvalidSignatureFile("Too many blocks in signature files : " + blocks);
+				sigBufs[i] = inputChannel.map(FileChannel.MapMode.READ_ONLY, 0, inputChannel.size());
+			} finally {
+				fin.close();
 			}
-		} finally {
-			fin.close();
 		}
-		return sigMap;
+		byte zeroMd5[] = Arrays.copyOfRange(zeroSig, 4, sigLen);
+		if (offHeapIndex)
+			return new OffHeapSigIndex(sigBufs, digestLen, zeroMd5);
+		return new HeapSigIndex(sigBufs, digestLen, zeroMd5);
+	}
+
+	/*
+	 * Keep the signature index used by generateDeltaFile off the heap. Useful
+	 * for very large base files, where an on-heap index would put a lot of
+	 * pressure on the garbage collector.
+	 */
+	void setOffHeapIndex(boolean offHeapIndex) {
+		this.offHeapIndex = offHeapIndex;
+	}
+
+	/*
+	 * Before searching for matching blocks, let generateDeltaFile check
+	 * whether source starts with the same blocks as the first base file, at
+	 * the same positions. The verified prefix is recorded as a single copy.
+	 * Useful for files which are only appended to, like logs.
+	 */
+	void setVerifyPrefix(boolean verifyPrefix) {
+		this.verifyPrefix = verifyPrefix;
+	}
+
+	/*
+	 * Check if block with given id of the first base file matches the block of
+	 * source at the same position
+	 */
+	private boolean alignedBlockMatches(ByteBuffer in, SigIndex sigIndex, RollingHash hash, int id) {
+		int start = id * blockSize, end = (int) Math.min((long) start + blockSize, in.limit());
+		// a block of zeros is compared directly, without hashing
+		if (sigIndex.isZeroBlock(id))
+			return end - start == blockSize && isZero(in, start, end);
+		ByteBuffer block = in.duplicate();
+		block.limit(end);
+		block.position(start);
+		byte buf[] = new byte[block.remaining()];
+		block.get(buf);
+		hash.reset();
+		hash.update(buf, 0, buf.length);
+		if (hash.getHash() != sigIndex.hash(id))
+			return false;
+		MessageDigest md5 = threadMd5.get();
+		md5.reset();
+		md5.update(buf);
+		return sigIndex.strongHashEquals(id, md5.digest());
+	}
+
+	/*
+	 * Get length of the longest prefix of source made of blocks equal to the
+	 * blocks of the first base file at the same positions. Blocks are checked
+	 * in parallel, in batches growing from MIN_PREFIX_BATCH to
+	 * MAX_PREFIX_BATCH blocks so that little work is wasted if source diverges
+	 * early.
+	 */
+	private int verifyPrefix(ByteBuffer in, SigIndex sigIndex) {
+		int blocks = (int) Math.min(sigIndex.blockCount(0), ((long) in.limit() + blockSize - 1) / blockSize);
+		ThreadLocal<RollingHash> hash = ThreadLocal.withInitial(() -> new RollingHash(blockSize));
+		int verified = 0; // number of verified blocks
+		int batch = MIN_PREFIX_BATCH;
+		while (verified < blocks) {
+			int batchEnd = (int) Math.min(blocks, (long) verified + batch);
+			// find the first mismatching block of the batch
+			verified = IntStream.range(verified, batchEnd).parallel().filter(id -> !alignedBlockMatches(in, sigIndex, hash.get(), id)).min()
+					.orElse(batchEnd);
+			if (verified < batchEnd)
+				break;
+			batch = Math.min(MAX_PREFIX_BATCH, batch * 2);
+		}
+		return (int) Math.min((long) verified * blockSize, in.limit());
 	}
 
 	/*
@@ -140,148 +464,378 @@ public class JSync {
 	 * Generate delta file given a source file and a signature file
 	 */
 	void generateDeltaFile(File source, File sigFile, File deltaFile) throws IOException, InvalidSignatureFile {
+		generateDeltaFile(source, Collections.singletonList(sigFile), null, deltaFile);
+	}
+
+	/*
+	 * Generate delta file given a source file, a signature file and the base
+	 * file the signature file was generated from. Every matched block is
+	 * extended byte by byte (backwards into the preceding mismatched region
+	 * and forwards past the end of the block) as long as source and base
+	 * file agree, so an edit costs only the changed bytes instead of a whole
+	 * block. Base file may be null, then only whole blocks are matched.
+	 */
+	void generateDeltaFile(File source, File sigFile, File baseFile, File deltaFile) throws IOException, InvalidSignatureFile {
+		generateDeltaFile(source, Collections.singletonList(sigFile), baseFile == null ? null : Collections.singletonList(baseFile), deltaFile);
+	}
+
+	/*
+	 * Generate delta file given a source file and signature files of several
+	 * base files, blocks of source file can be matched with blocks of any of
+	 * the base files. baseFiles may be null, otherwise it must list the base
+	 * files in the same order as sigFiles and matched blocks are extended as
+	 * described above. The delta file has to be applied with the same list of
+	 * base files.
+	 */
+	void generateDeltaFile(File source, List<File> sigFiles, List<File> baseFiles, File deltaFile) throws IOException, InvalidSignatureFile {
+		if (baseFiles != null && baseFiles.size() != sigFiles.size())
+			throw new IllegalArgumentException("Number of base files does not match number of signature files");
 		deltaFile.delete(); // delete delta file if it already exists
 
-		RandomAccessFile raf = null;
 		DataOutputStream deltaOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(deltaFile)));
 		FileInputStream fin = new FileInputStream(source);
 		ByteBuffer in = fin.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, source.length());
+		ByteBuffer bases[] = null;
 		int possible = 0, found = 0;
 		try {
+			if (baseFiles != null) {
+				bases = new ByteBuffer[baseFiles.size()];
+				for (int i = 0; i < bases.length; i++) {
+					FileInputStream baseIn = new FileInputStream(baseFiles.get(i));
+					try {
+						bases[i] = baseIn.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, baseFiles.get(i).length());
+					} finally {
+						baseIn.close();
+					}
+				}
+			}
+
 			// load signatures in memory
-			Map<Integer, Map<BlockSig, List<Integer>>> sigMap = loadSigFile(sigFile);
+			SigIndex sigIndex = loadSigFiles(sigFiles);
 
 			rollingHash.reset();
 
-			// for holding current block data
-			Queue<Byte> q = new ArrayDeque<>(blockSize);
-
-			boolean insideMismatch = false; // if processing a mismatched region
-			int mismatchLen = 0; // length of current mismatched region
+			int len = in.limit(); // length of source file
+			int mismatchStart = 0; // start of current mismatched region
+			int blockStart = 0; // start of current block
+			int pos = 0; // end of current block
+			int predicted = -1; // id of block expected to match next
+			int currentBase = 0; // base file MATCH and RANGE refer to
 
-			// lengths of mismatched regions
-			List<Integer> lens = new ArrayList<>();
-			// where to write lengths of mismatched regions in delta file
-			List<Integer> pointers = new ArrayList<>();
+			if (verifyPrefix) {
+				// record the part of source equal to the start of the first
+				// base file as a single copy, search for matching blocks only
+				// after it
+				int prefixEnd = verifyPrefix(in, sigIndex);
+				int copyEnd = prefixEnd;
+				if (bases != null) {
+					// extend it byte by byte as well
+					copyEnd = extendMatch(in, prefixEnd, bases[0], prefixEnd);
+				}
+				// blocks of zeros in the prefix are recorded as holes
+				for (int start = 0, end; start < copyEnd; start = end) {
+					end = start;
+					if (start < prefixEnd && sigIndex.isZeroBlock(start / blockSize)) {
+						while (end < prefixEnd && sigIndex.isZeroBlock(end / blockSize))
+							end += blockSize;
+						// zeros the prefix was extended with join the hole
+						if (end == prefixEnd) {
+							while (end < copyEnd && in.get(end) == 0)
+								end++;
+						}
+						deltaOut.write(HOLE);
+						deltaOut.writeInt(end - start);
+					} else {
+						while (end < copyEnd && (end >= prefixEnd || !sigIndex.isZeroBlock(end / blockSize)))
+							end = end < prefixEnd ? Math.min(end + blockSize, prefixEnd) : copyEnd;
+						deltaOut.write(RANGE);
+						deltaOut.writeLong(start);
+						deltaOut.writeInt(end - start);
+					}
+				}
+				mismatchStart = blockStart = pos = copyEnd;
+				if (copyEnd > 0 && copyEnd % blockSize == 0)
+					predicted = sigIndex.id(0, copyEnd / blockSize);
+			}
 
-			while (in.hasRemaining()) {
-				byte inByte = in.get();
-				if (q.size() < blockSize) {
-					q.add(inByte);
+			while (pos < len) {
+				byte inByte = in.get(pos++);
+				if (pos - blockStart <= blockSize) {
 					rollingHash.update(inByte);
 				} else {
-					byte outByte = q.poll();
-					q.add(inByte);
-					rollingHash.update(inByte, outByte);
-					// record mismatched byte
-					deltaOut.write(outByte);
-					mismatchLen++;
+					// slide the block by one byte, the byte leaving it stays
+					// in the mismatched region
+					rollingHash.update(inByte, in.get(blockStart++));
 				}
 				// process current block
-				if (q.size() == blockSize || !in.hasRemaining()) {
-					// get block signatures with same weak hash
-					Map<BlockSig, List<Integer>> map = sigMap.get(rollingHash.getHash());
-
-					boolean flag = false; // if we find a matching block
-					BlockSig blockSig = null;
-					if (map != null) {
+				if (pos - blockStart == blockSize || pos == len) {
+					int hash = rollingHash.getHash();
+					if (hash == 0 && pos - blockStart == blockSize && isZero(in, blockStart, pos)) {
+						// block of zeros, record it together with the zeros
+						// around it as a hole
+						int holeStart = blockStart, holeEnd = pos;
+						while (holeStart > mismatchStart && in.get(holeStart - 1) == 0)
+							holeStart--;
+						while (len - holeEnd >= blockSize && isZero(in, holeEnd, holeEnd + blockSize))
+							holeEnd += blockSize;
+						// zeros after the last whole block of zeros may be the
+						// start of the next matching block, take them only if
+						// matches are extended, the rest of that block is then
+						// taken back by extending the next match backwards
+						while (bases != null && holeEnd < len && in.get(holeEnd) == 0)
+							holeEnd++;
+						writeMismatch(deltaOut, in, mismatchStart, holeStart);
+						deltaOut.write(HOLE);
+						deltaOut.writeInt(holeEnd - holeStart);
+						mismatchStart = blockStart = pos = holeEnd;
+						rollingHash.reset();
+						predicted = -1;
+						continue;
+					}
+					byte digest[] = null; // strong hash of current block
+					int blockId = -1; // id of matching block
+					if (predicted >= 0 && sigIndex.hash(predicted) == hash) {
+						// the block following the last matched block is the
+						// most likely match, check it before the index
 						possible++;
-						// weak hash matches, now try to match strong hash
-						// calculate strong hash
-						md5.reset();
-						for (byte b : q) {
-							md5.update(b);
-						}
-						// prepare key
-						blockSig = new BlockSig(0, rollingHash.getHash(), md5.digest());
-
-						// get list of matching block signatures
-						List<Integer> blockIdList = map.get(blockSig);
-						if (blockIdList != null) {
-							// we have at least one matching block
-							// get the first matching block id
-							blockSig.id = blockIdList.remove(0);
-
-							// remove entries from maps if necessary
-							if (blockIdList.isEmpty()) {
-								map.remove(blockSig);
-								if (map.size() == 0)
-									sigMap.remove(rollingHash.getHash());
-							}
-							found++;
-							q.clear();
-							rollingHash.reset();
-							flag = true; // signal matching block found
-						}
+						digest = strongHash(in, blockStart, pos);
+						if (sigIndex.strongHashEquals(predicted, digest))
+							blockId = predicted;
 					}
-					if (!flag) {
-						if (!insideMismatch) {
-							deltaOut.write(MISMATCH);
-							// save location to write length of this mismatched
-							// region
-							pointers.add(deltaOut.size());
-							// write dummy value for now
-							deltaOut.writeInt(0);
-							insideMismatch = true;
+					// prediction is only valid for the first block after a
+					// match
+					predicted = -1;
+					// check if any block has the same weak hash
+					if (blockId < 0 && sigIndex.contains(hash)) {
+						if (digest == null) {
+							possible++;
+							// weak hash matches, now try to match strong hash
+							digest = strongHash(in, blockStart, pos);
 						}
-					} else {
-						if (insideMismatch) {
-							// save length of last mismatched region
-							lens.add(mismatchLen);
-							mismatchLen = 0;
-							insideMismatch = false;
+						// get a block with matching signature
+						blockId = sigIndex.find(hash, digest);
+					}
+					if (blockId < 0)
+						continue;
+					found++;
+
+					// matching region of source and base file
+					int baseIndex = sigIndex.file(blockId), localId = sigIndex.localId(blockId);
+					int matchStart = blockStart, matchEnd = pos;
+					int baseStart = localId * blockSize, baseEnd = baseStart + (pos - blockStart);
+					if (bases != null) {
+						ByteBuffer base = bases[baseIndex];
+						// extend the match backwards into the mismatched region
+						while (matchStart > mismatchStart && baseStart > 0 && in.get(matchStart - 1) == base.get(baseStart - 1)) {
+							matchStart--;
+							baseStart--;
 						}
-						// record matching block id
+						// and forwards past the end of the block
+						matchEnd = extendMatch(in, pos, base, baseEnd);
+						baseEnd += matchEnd - pos;
+					}
+
+					writeMismatch(deltaOut, in, mismatchStart, matchStart);
+					if (baseIndex != currentBase) {
+						// switch to base file of matching block
+						deltaOut.write(BASE);
+						deltaOut.writeInt(baseIndex);
+						currentBase = baseIndex;
+					}
+					if (matchStart == blockStart && matchEnd == pos && pos - blockStart == blockSize) {
+						// record matching block id, a MATCH always stands for
+						// blockSize bytes so that a delta file describes the
+						// layout of its target on its own (see composeDeltas)
 						deltaOut.write(MATCH);
-						deltaOut.writeInt(blockSig.id);
+						deltaOut.writeInt(localId);
+					} else {
+						// record matching byte range of base file
+						deltaOut.write(RANGE);
+						deltaOut.writeLong(baseStart);
+						deltaOut.writeInt(matchEnd - matchStart);
 					}
+
+					// continue after the match
+					mismatchStart = blockStart = pos = matchEnd;
+					rollingHash.reset();
+					if (baseEnd % blockSize == 0)
+						predicted = sigIndex.id(baseIndex, baseEnd / blockSize);
 				}
 			}
-			// if last block did not match then process the remaining data in
-			// the queue
-			if (insideMismatch) {
-				for (byte b : q)
-					deltaOut.write(b);
-				mismatchLen += q.size();
-				lens.add(mismatchLen);
+			// record the remaining data as mismatched
+			writeMismatch(deltaOut, in, mismatchStart, len);
+		} finally {
+			fin.close();
+			deltaOut.close();
+		}
+		System.out.println("Possible : " + possible + " | Found : " + found);
+	}
+
+	/*
+	 * Compose delta file "first" (base files -> B) and delta file "second"
+	 * (B -> C) into a single delta file (base files -> C), without having B or
+	 * C. Regions of C copied from B are looked up in the layout of B and
+	 * replaced by the matching parts of "first". "second" must have been
+	 * generated against B alone, both delta files must use the block size of
+	 * this instance.
+	 */
+	void composeDeltas(File first, File second, File composedDelta) throws IOException {
+		RandomAccessFile firstData = new RandomAccessFile(first, "r");
+		RandomAccessFile secondData = new RandomAccessFile(second, "r");
+		DataOutputStream out = null;
+		try {
+			List<Segment> middle = readLayout(first, firstData); // layout of B
+			List<Segment> last = readLayout(second, secondData); // layout of C
+
+			// position of each region of B
+			long middleStart[] = new long[middle.size() + 1];
+			for (int i = 0; i < middle.size(); i++)
+				middleStart[i + 1] = middleStart[i] + middle.get(i).len;
+
+			List<Segment> composed = new ArrayList<>(); // layout of C in terms of base files
+			for (Segment seg : last) {
+				if (seg.base < 0) {
+					// stored in "second" or zeros
+					addSegment(composed, seg);
+					continue;
+				}
+				if (seg.base != 0)
+					throw new IOException("Delta file refers to more than one base file : " + second.getAbsolutePath());
+				long offset = seg.offset;
+				long end = offset + seg.len;
+				if (end > middleStart[middle.size()])
+					throw new IOException("Delta file refers to data beyond its base file : " + second.getAbsolutePath());
+				// find the region of B containing offset
+				int i = Arrays.binarySearch(middleStart, offset);
+				if (i < 0)
+					i = -i - 2;
+				while (offset < end) {
+					Segment m = middle.get(i);
+					long skip = offset - middleStart[i];
+					int len = (int) Math.min(end - offset, m.len - skip);
+					addSegment(composed, new Segment(len, m.base, m.offset + skip, m.delta));
+					offset += len;
+					i++;
+				}
 			}
 
-			deltaOut.close();
+			composedDelta.delete(); // delete composed delta file if it already exists
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(composedDelta)));
+			writeLayout(composed, out);
+		} finally {
+			firstData.close();
+			secondData.close();
+			if (out != null)
+				out.close();
+		}
+	}
 
-			// write lengths of mismatched regions at appropriate locations in
-			// delta file
-			raf = new RandomAccessFile(deltaFile, "rw");
-			for (int i = 0; i < pointers.size(); i++) {
-				raf.seek(pointers.get(i));
-				raf.writeInt(lens.get(i));
+	/*
+	 * Compose a chain of delta files, each one generated against the target of
+	 * the previous one, into a single delta file
+	 */
+	void composeDeltas(List<File> deltas, File composedDelta) throws IOException {
+		if (deltas.isEmpty())
+			throw new IllegalArgumentException("No delta files to compose");
+		if (deltas.size() == 1) {
+			Files.copy(deltas.get(0).toPath(), composedDelta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		File current = deltas.get(0), next = null;
+		try {
+			for (int i = 1; i < deltas.size(); i++) {
+				next = composedDelta;
+				if (i < deltas.size() - 1)
+					next = File.createTempFile("jsync", ".delta", composedDelta.getAbsoluteFile().getParentFile());
+				composeDeltas(current, deltas.get(i), next);
+				if (i > 1)
+					current.delete(); // delete intermediate delta file
+				current = next;
 			}
 		} finally {
-			fin.close();
-			deltaOut.close();
-			if (raf != null)
-				raf.close();
+			// delete intermediate delta files left by a failed step
+			if (current != deltas.get(0) && current != composedDelta)
+				current.delete();
+			if (next != null && next != current && next != composedDelta)
+				next.delete();
 		}
-		System.out.println("Possible : " + possible + " | Found : " + found);
 	}
 
 	void applyDelta(File baseFile, File deltaFile, File targetFile) throws IOException {
-		RandomAccessFile base = new RandomAccessFile(baseFile, "r");
+		applyDelta(Collections.singletonList(baseFile), deltaFile, targetFile);
+	}
+
+	/*
+	 * Apply a delta file generated against several base files. Base files are
+	 * opened when the delta first refers to them, at most MAX_OPEN_BASES are
+	 * kept open at a time (least recently used one is closed first).
+	 */
+	void applyDelta(List<File> baseFiles, File deltaFile, File targetFile) throws IOException {
+		// open base files, in least recently used order
+		LinkedHashMap<Integer, RandomAccessFile> openBases = new LinkedHashMap<>(16, 0.75f, true);
 		DataInputStream delta = new DataInputStream(new BufferedInputStream(new FileInputStream(deltaFile)));
-		BufferedOutputStream target = new BufferedOutputStream(new FileOutputStream(targetFile));
-		while (delta.available() > 0) {
-			byte action = delta.readByte();
-			if (action == MATCH) {
-				// matching block found, copy it from base file
-				int blockId = delta.readInt();
-				copyBlock(base, target, blockId);
-			} else {
-				// mismatched region, copy it from delta file
-				int len = delta.readInt();
-				copyMismatch(delta, target, len);
+		FileOutputStream targetOut = new FileOutputStream(targetFile);
+		FileChannel targetChannel = targetOut.getChannel();
+		BufferedOutputStream target = new BufferedOutputStream(targetOut);
+		try {
+			int baseIndex = 0; // base file MATCH and RANGE refer to
+			while (delta.available() > 0) {
+				byte action = delta.readByte();
+				if (action == MATCH) {
+					// matching block found, copy it from base file
+					int blockId = delta.readInt();
+					copyBlock(openBase(openBases, baseFiles, baseIndex), target, blockId);
+				} else if (action == RANGE) {
+					// matching byte range, copy it from base file
+					long offset = delta.readLong();
+					int len = delta.readInt();
+					copyRange(openBase(openBases, baseFiles, baseIndex), target, offset, len);
+				} else if (action == BASE) {
+					// following matches refer to another base file
+					baseIndex = delta.readInt();
+				} else if (action == HOLE) {
+					// region of zeros, skip it so that the file system can
+					// leave a hole
+					int len = delta.readInt();
+					target.flush();
+					targetChannel.position(targetChannel.position() + len);
+				} else {
+					// mismatched region, copy it from delta file
+					int len = delta.readInt();
+					copyMismatch(delta, target, len);
+				}
+			}
+			target.flush();
+			if (targetChannel.size() < targetChannel.position()) {
+				// file ends with a hole, write its last byte to set the
+				// length of the file
+				targetChannel.write(ByteBuffer.allocate(1), targetChannel.position() - 1);
 			}
+		} finally {
+			for (RandomAccessFile base : openBases.values())
+				base.close();
+			delta.close();
+			target.close();
+		}
+	}
+
+	/*
+	 * Get base file with given index from the open base files, opening it
+	 * (and closing the least recently used one) if necessary
+	 */
+	private RandomAccessFile openBase(LinkedHashMap<Integer, RandomAccessFile> openBases, List<File> baseFiles, int index) throws IOException {
+		RandomAccessFile base = openBases.get(index);
+		if (base != null)
+			return base;
+		if (index < 0 || index >= baseFiles.size())
+			throw new IOException("Delta file refers to unknown base file : " + index);
+		if (openBases.size() >= MAX_OPEN_BASES) {
+			Iterator<RandomAccessFile> eldest = openBases.values().iterator();
+			eldest.next().close();
+			eldest.remove();
 		}
-		base.close();
-		delta.close();
-		target.close();
+		base = new RandomAccessFile(baseFiles.get(index), "r");
+		openBases.put(index, base);
+		return base;
 	}
 }
@@ -0,0 +1,276 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Macro benchmark running full sign -> delta -> apply cycles over large
+ * generated files, one scenario per modifier. The delta of each scenario is
+ * generated in every mode of MODES. Results are printed to standard output as
+ * one JSON object per scenario and mode, so runs of different releases can be
+ * compared by a script.
+ *
+ * Usage : JSyncBenchmark [size in MB] [block size] [off-heap index (true/false)]
+ *
+ * Files are memory mapped with a single mapping, so size must stay below
+ * 2048 MB.
+ */
+public class JSyncBenchmark {
+	// ways of generating a delta : without the base file (plain rsync),
+	// extending matches against the base file, and verifying an unchanged
+	// prefix first as well
+	static final String MODES[] = { "plain", "extend", "verify-prefix" };
+
+	long size; // size of generated base file
+	int blockSize;
+	boolean offHeapIndex;
+	String workingDir;
+	PrintStream results;
+
+	JSyncBenchmark(long size, int blockSize, boolean offHeapIndex, String workingDir, PrintStream results) {
+		this.size = size;
+		this.blockSize = blockSize;
+		this.offHeapIndex = offHeapIndex;
+		this.workingDir = workingDir;
+		this.results = results;
+	}
+
+	/*
+	 * returns the scenarios to be benchmarked
+	 */
+	List<Modifier> getModifiers() {
+		List<Modifier> ret = new ArrayList<>();
+		ret.add(new NoModifier(workingDir));
+		ret.add(new RandomBytesModifier(1024, 4, workingDir));
+		ret.add(new RandomBytesInsert(1024, 128, workingDir));
+		ret.add(new LogAppend(size / 16, workingDir));
+		ret.add(new PageRewrite(1024, 8 * 1024, workingDir));
+		ret.add(new AlignedBlockChange(64, 4 * 1024, 256, workingDir));
+		ret.add(new MoveRegion(size / 8, workingDir));
+		return ret;
+	}
+
+	/*
+	 * creates a base file of given size, a mix of random data, repeated
+	 * data and zeros
+	 */
+	void createFile(File f, long size) throws IOException {
+		Random rand = new Random();
+		byte chunks[][] = new byte[16][64 * 1024]; // recently written chunks
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		long chunkCount = 0;
+		while (size != 0) {
+			byte chunk[] = chunks[(int) (chunkCount % chunks.length)];
+			int r = rand.nextInt(10);
+			if (chunkCount < chunks.length || r < 6) {
+				// new random data (60% of the times)
+				rand.nextBytes(chunk);
+			} else if (r < 9) {
+				// repeat a recently written chunk (30% of the times)
+				chunk = chunks[rand.nextInt(chunks.length)];
+			} else {
+				// zeros (10% of the times)
+				Arrays.fill(chunk, (byte) 0);
+			}
+			int len = (int) Math.min(chunk.length, size);
+			out.write(chunk, 0, len);
+			size -= len;
+			chunkCount++;
+		}
+		out.close();
+	}
+
+	static boolean sameContent(File f1, File f2) throws IOException {
+		if (f1.length() != f2.length())
+			return false;
+		InputStream in1 = new BufferedInputStream(new FileInputStream(f1));
+		InputStream in2 = new BufferedInputStream(new FileInputStream(f2));
+		try {
+			byte buf1[] = new byte[64 * 1024], buf2[] = new byte[64 * 1024];
+			int len;
+			while ((len = in1.read(buf1)) > 0) {
+				int off = 0;
+				while (off < len) {
+					int read = in2.read(buf2, off, len - off);
+					if (read < 0)
+						return false;
+					off += read;
+				}
+				for (int i = 0; i < len; i++) {
+					if (buf1[i] != buf2[i])
+						return false;
+				}
+			}
+			return true;
+		} finally {
+			in1.close();
+			in2.close();
+		}
+	}
+
+	/*
+	 * Reset peak resident set size of this process, only works on Linux
+	 */
+	static void resetPeakRss() {
+		try {
+			FileWriter w = new FileWriter("/proc/self/clear_refs");
+			w.write("5");
+			w.close();
+		} catch (IOException e) {
+			// peak will cover previous scenarios as well
+		}
+	}
+
+	/*
+	 * Get peak resident set size of this process in bytes, or -1 if it is
+	 * not available
+	 */
+	static long peakRss() {
+		try {
+			BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"));
+			try {
+				String line;
+				while ((line = r.readLine()) != null) {
+					if (line.startsWith("VmHWM:"))
+						return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			} finally {
+				r.close();
+			}
+		} catch (IOException e) {
+			// not available, reported as -1
+		}
+		return -1;
+	}
+
+	/*
+	 * returns total time spent in garbage collection (ms) and number of
+	 * collections so far
+	 */
+	static long[] gcStats() {
+		long ret[] = new long[2];
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			ret[0] += Math.max(0, gc.getCollectionTime());
+			ret[1] += Math.max(0, gc.getCollectionCount());
+		}
+		return ret;
+	}
+
+	static double mbPerSec(long bytes, long nanos) {
+		return nanos == 0 ? 0 : bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+	}
+
+	/*
+	 * run one sign -> delta -> apply cycle per mode and print their results
+	 */
+	void run(File base, Modifier modifier) throws IOException, DigestException, InvalidSignatureFile {
+		File source = new File(workingDir + "source");
+		Files.copy(base.toPath(), source.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		modifier.modify(source);
+		try {
+			for (String mode : MODES)
+				run(base, source, modifier, mode);
+		} finally {
+			source.delete();
+		}
+	}
+
+	/*
+	 * run one sign -> delta -> apply cycle in given mode and print its
+	 * results
+	 */
+	void run(File base, File source, Modifier modifier, String mode) throws IOException, DigestException, InvalidSignatureFile {
+		File sigFile = new File(workingDir + "sig");
+		File deltaFile = new File(workingDir + "delta"), target = new File(workingDir + "target");
+
+		JSync jSync = new JSync(blockSize);
+		jSync.setOffHeapIndex(offHeapIndex);
+		jSync.setVerifyPrefix(mode.equals("verify-prefix"));
+		System.gc();
+		resetPeakRss();
+		long gcBefore[] = gcStats();
+
+		long t0 = System.nanoTime();
+		jSync.generateSigFile(base, sigFile);
+		long t1 = System.nanoTime();
+		if (mode.equals("plain"))
+			jSync.generateDeltaFile(source, sigFile, deltaFile);
+		else
+			jSync.generateDeltaFile(source, sigFile, base, deltaFile);
+		long t2 = System.nanoTime();
+		jSync.applyDelta(base, deltaFile, target);
+		long t3 = System.nanoTime();
+
+		long gcAfter[] = gcStats();
+		long rss = peakRss();
+		boolean verified = sameContent(source, target);
+
+		results.println("{\"scenario\":\"" + modifier.getDescription() + "\"" //
+				+ ",\"mode\":\"" + mode + "\"" //
+				+ ",\"blockSize\":" + blockSize //
+				+ ",\"offHeapIndex\":" + offHeapIndex //
+				+ ",\"baseBytes\":" + base.length() //
+				+ ",\"sourceBytes\":" + source.length() //
+				+ ",\"sigBytes\":" + sigFile.length() //
+				+ ",\"deltaBytes\":" + deltaFile.length() //
+				+ ",\"deltaRatio\":" + (source.length() == 0 ? 0 : deltaFile.length() * 1.0 / source.length()) //
+				+ ",\"signMs\":" + (t1 - t0) / 1000000 //
+				+ ",\"deltaMs\":" + (t2 - t1) / 1000000 //
+				+ ",\"applyMs\":" + (t3 - t2) / 1000000 //
+				+ ",\"signMBps\":" + mbPerSec(base.length(), t1 - t0) //
+				+ ",\"deltaMBps\":" + mbPerSec(source.length(), t2 - t1) //
+				+ ",\"applyMBps\":" + mbPerSec(target.length(), t3 - t2) //
+				+ ",\"peakRssBytes\":" + rss //
+				+ ",\"gcMs\":" + (gcAfter[0] - gcBefore[0]) //
+				+ ",\"gcCount\":" + (gcAfter[1] - gcBefore[1]) //
+				+ ",\"verified\":" + verified + "}");
+		results.flush();
+
+		sigFile.delete();
+		deltaFile.delete();
+		target.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		long sizeMB = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+		int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 2 * 1024;
+		boolean offHeapIndex = args.length > 2 && Boolean.parseBoolean(args[2]);
+		if (sizeMB <= 0 || sizeMB >= 2048)
+			throw new IllegalArgumentException("Size must be between 1 and 2047 MB : " + sizeMB);
+
+		// keep standard output for results only, diagnostics go to standard
+		// error
+		PrintStream results = System.out;
+		System.setOut(System.err);
+
+		File dir = Files.createTempDirectory("jsync-bench").toFile();
+		String workingDir = dir.getAbsolutePath() + File.separator;
+		JSyncBenchmark benchmark = new JSyncBenchmark(sizeMB * 1024 * 1024, blockSize, offHeapIndex, workingDir, results);
+		File base = new File(workingDir + "base");
+		try {
+			benchmark.createFile(base, benchmark.size);
+			for (Modifier modifier : benchmark.getModifiers())
+				benchmark.run(base, modifier);
+		} finally {
+			base.delete();
+			dir.delete();
+		}
+	}
+}
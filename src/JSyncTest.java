@@ -1,4 +1,6 @@
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -11,6 +13,7 @@ import java.nio.channels.FileChannel;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -31,9 +34,11 @@ public class JSyncTest {
 		}
 	}
 	JSync jSync;
+	int blockSize = 2 * 1024;
 	String workingDir;
 	String fileName;
 	File original, modified, target;
+	boolean extendMatches; // pass base file to generateDeltaFile
 
 	static byte[] sha1(File f) throws FileNotFoundException, IOException {
 		sha1.reset();
@@ -130,20 +135,55 @@ public class JSyncTest {
 		fin2.close();
 	}
 
-	void sync() throws DigestException, IOException, InvalidSignatureFile {
+	/*
+	 * sync target with original using modified as base file, returns length
+	 * of delta file
+	 */
+	long sync() throws DigestException, IOException, InvalidSignatureFile {
 		File sigFile = new File(workingDir + "sig"), deltaFile = new File(workingDir + "delta");
 		jSync.generateSigFile(modified, sigFile);
-		jSync.generateDeltaFile(original, sigFile, deltaFile);
+		jSync.generateDeltaFile(original, sigFile, extendMatches ? modified : null, deltaFile);
 		jSync.applyDelta(modified, deltaFile, target);
-		System.out.println("Sig len : " + sigFile.length() + " | Delta len : " + deltaFile.length());
+		long deltaLen = deltaFile.length();
+		System.out.println("Sig len : " + sigFile.length() + " | Delta len : " + deltaLen);
 		sigFile.delete();
 		deltaFile.delete();
+		return deltaLen;
+	}
+
+	/*
+	 * fill zeros of a file which are at least blockSize bytes away from any
+	 * other byte with 0xFF, returns number of bytes filled. A delta file must
+	 * never copy these from its base file, they have to be recorded as holes.
+	 */
+	int fillZeros(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		byte buf[] = new byte[(int) raf.length()];
+		raf.readFully(buf);
+		// distance of each byte from the closest non zero byte before it
+		int dist[] = new int[buf.length];
+		for (int i = 0, d = blockSize; i < buf.length; i++) {
+			d = buf[i] != 0 ? 0 : Math.min(d + 1, blockSize);
+			dist[i] = d;
+		}
+		int count = 0;
+		for (int i = buf.length - 1, d = blockSize; i >= 0; i--) {
+			d = buf[i] != 0 ? 0 : Math.min(d + 1, blockSize);
+			if (Math.min(d, dist[i]) >= blockSize) {
+				buf[i] = (byte) 0xFF;
+				count++;
+			}
+		}
+		raf.seek(0);
+		raf.write(buf);
+		raf.close();
+		return count;
 	}
 
 	@Before
 	public void setUp() throws Exception {
 		workingDir = "/home/shivam/jsync/testing/";
-		jSync = new JSync(2 * 1024);
+		jSync = new JSync(blockSize);
 		fileName = "f";
 		original = new File(workingDir + fileName + "_original");
 		modified = new File(workingDir + fileName + "_modified");
@@ -177,4 +217,234 @@ public class JSyncTest {
 		modified.delete();
 		target.delete();
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testSyncExtendMatches() throws IOException, DigestException, InvalidSignatureFile {
+		extendMatches = true;
+		testSync();
+
+		// with the base file only the modified bytes are sent, instead of
+		// the whole blocks containing them
+		createFile(original, 4 * 1024 * 1024);
+		copy(original, modified);
+		new RandomBytesModifier(32, 4, workingDir).modify(modified);
+		extendMatches = false;
+		long plain = sync();
+		assertArrayEquals(sha1(original), sha1(target));
+		extendMatches = true;
+		long extended = sync();
+		assertArrayEquals(sha1(original), sha1(target));
+		System.out.println("Delta len without base : " + plain + " | with base : " + extended);
+		assertTrue(extended < plain / 10);
+		original.delete();
+		modified.delete();
+		target.delete();
+	}
+
+	@Test
+	public void testSyncRepeatedBlocks() throws IOException, DigestException, InvalidSignatureFile {
+		// random data only, so that every block is different and not zeros
+		byte data[] = new byte[256 * blockSize];
+		new Random().nextBytes(data);
+		FileOutputStream fout = new FileOutputStream(modified);
+		fout.write(data);
+		fout.close();
+		copy(modified, original);
+		// every block of the base file appears twice in the source, each
+		// one must be a MATCH record (1 + 4 bytes), found either as the
+		// predicted next block or by its hash
+		new ReplicateWholeFile(workingDir).modify(original);
+		assertEquals(2 * 256 * 5, sync());
+		assertArrayEquals(sha1(original), sha1(target));
+		original.delete();
+		modified.delete();
+		target.delete();
+	}
+
+	@Test
+	public void testSyncVerifyPrefix() throws IOException, DigestException, InvalidSignatureFile {
+		jSync.setVerifyPrefix(true);
+		testSync();
+		extendMatches = true;
+		testSync();
+
+		// an unchanged file is a single RANGE record (1 + 8 + 4 bytes). Random
+		// data only, createFile may write blocks of zeros, which are holes.
+		extendMatches = false;
+		byte data[] = new byte[487524];
+		new Random().nextBytes(data);
+		FileOutputStream fout = new FileOutputStream(original);
+		fout.write(data);
+		fout.close();
+		copy(original, modified);
+		assertEquals(13, sync());
+		assertArrayEquals(sha1(original), sha1(target));
+
+		// appended data follows the RANGE record as a single MISMATCH record
+		// (1 + 4 bytes + data)
+		extendMatches = true;
+		new LogAppend(10000, workingDir).modify(original);
+		assertEquals(13 + 5 + 10000, sync());
+		assertArrayEquals(sha1(original), sha1(target));
+		original.delete();
+		modified.delete();
+		target.delete();
+	}
+
+	@Test
+	public void testSyncZeroBlocks() throws IOException, DigestException, InvalidSignatureFile {
+		File sigFile = new File(workingDir + "sig"), deltaFile = new File(workingDir + "delta");
+		File filled = new File(workingDir + fileName + "_filled");
+
+		// mostly zeros, with some random data at the start, at the end and
+		// in between
+		original.delete();
+		RandomAccessFile raf = new RandomAccessFile(original, "rw");
+		raf.setLength(3 * 1024 * 1024 + 2745);
+		Random rand = new Random();
+		byte buf[] = new byte[3000];
+		for (int i = 0; i < 10; i++) {
+			rand.nextBytes(buf);
+			if (i == 0)
+				raf.seek(0);
+			else if (i == 1)
+				raf.seek(raf.length() - buf.length);
+			else
+				raf.seek((rand.nextLong() & Long.MAX_VALUE) % (raf.length() - buf.length));
+			raf.write(buf);
+		}
+		raf.close();
+		copy(original, filled);
+		int zeros = fillZeros(filled);
+
+		for (boolean verifyPrefix : new boolean[] { false, true }) {
+			jSync.setVerifyPrefix(verifyPrefix);
+			for (boolean withBase : new boolean[] { false, true }) {
+				for (Modifier modifier : getModifiers()) {
+					System.out.println("Modifier : " + modifier.getDescription() + " | base : " + withBase + " | prefix : " + verifyPrefix);
+					copy(original, modified);
+					modifier.modify(modified);
+					jSync.generateSigFile(modified, sigFile);
+					jSync.generateDeltaFile(original, sigFile, withBase ? modified : null, deltaFile);
+
+					// zeros must be recorded as holes, not copied from base
+					// file, so the delta file also works with a base file
+					// whose zeros are filled
+					copy(modified, filled);
+					fillZeros(filled);
+					jSync.applyDelta(filled, deltaFile, target);
+					assertArrayEquals(sha1(original), sha1(target));
+					assertTrue(deltaFile.length() < zeros / 16);
+				}
+			}
+		}
+		original.delete();
+		modified.delete();
+		filled.delete();
+		target.delete();
+		sigFile.delete();
+		deltaFile.delete();
+	}
+
+	@Test
+	public void testSyncMultipleBases() throws IOException, DigestException, InvalidSignatureFile {
+		File modified2 = new File(workingDir + fileName + "_modified2");
+		File sigFile = new File(workingDir + "sig"), sigFile2 = new File(workingDir + "sig2");
+		File deltaFile = new File(workingDir + "delta");
+		List<File> bases = Arrays.asList(modified, modified2);
+
+		// each base file has only a part of original file
+		copy(original, modified);
+		new TruncateEnd(200 * 1024, workingDir).modify(modified);
+		new RandomBytesInsert(32, 128, workingDir).modify(modified);
+		copy(original, modified2);
+		new TruncateStart(200 * 1024, workingDir).modify(modified2);
+		new RandomBytesModifier(32, 4, workingDir).modify(modified2);
+
+		jSync.generateSigFile(modified, sigFile);
+		jSync.generateSigFile(modified2, sigFile2);
+		for (List<File> baseFiles : Arrays.asList(bases, null)) {
+			jSync.generateDeltaFile(original, Arrays.asList(sigFile, sigFile2), baseFiles, deltaFile);
+			jSync.applyDelta(bases, deltaFile, target);
+			assertArrayEquals(sha1(original), sha1(target));
+		}
+		original.delete();
+		modified.delete();
+		modified2.delete();
+		target.delete();
+		sigFile.delete();
+		sigFile2.delete();
+		deltaFile.delete();
+	}
+
+	@Test
+	public void testComposeDeltas() throws IOException, DigestException, InvalidSignatureFile {
+		File base = new File(workingDir + fileName + "_base"), sigFile = new File(workingDir + "sig");
+		List<File> deltas = new LinkedList<>();
+		File composed = new File(workingDir + "composed");
+
+		// chain of versions base -> modified -> ... -> original, each one
+		// modifying the previous one
+		copy(original, base);
+		copy(original, modified);
+		for (Modifier modifier : getModifiers()) {
+			if (modifier instanceof DeleteAllContent)
+				continue; // rest of the chain would be empty
+			modifier.modify(original);
+			File deltaFile = new File(workingDir + "delta" + deltas.size());
+			jSync.generateSigFile(modified, sigFile);
+			jSync.generateDeltaFile(original, sigFile, deltas.size() % 2 == 0 ? modified : null, deltaFile);
+			deltas.add(deltaFile);
+			copy(original, modified);
+
+			jSync.composeDeltas(deltas, composed);
+			jSync.applyDelta(base, composed, target);
+			assertArrayEquals(sha1(original), sha1(target));
+		}
+		for (File deltaFile : deltas)
+			deltaFile.delete();
+		original.delete();
+		modified.delete();
+		base.delete();
+		target.delete();
+		sigFile.delete();
+		composed.delete();
+	}
+
+	@Test
+	public void testSyncOffHeapIndex() throws IOException, DigestException, InvalidSignatureFile {
+		jSync.setOffHeapIndex(true);
+		testSync();
+	}
+
+	@Test
+	public void testSyncMultipleBasesOffHeapIndex() throws IOException, DigestException, InvalidSignatureFile {
+		jSync.setOffHeapIndex(true);
+		testSyncMultipleBases();
+	}
+
+	@Test
+	public void testSyncZeroBlocksOffHeapIndex() throws IOException, DigestException, InvalidSignatureFile {
+		jSync.setOffHeapIndex(true);
+		testSyncZeroBlocks();
+	}
+
+	@Test
+	public void testRollingHashBlockUpdate() {
+		Random rand = new Random();
+		RollingHash rollingHash = new RollingHash(2 * 1024);
+		for (int len = 0; len < 100; len++) {
+			byte buf[] = new byte[len + 3];
+			rand.nextBytes(buf);
+			// hash byte by byte
+			rollingHash.reset();
+			for (int i = 3; i < buf.length; i++)
+				rollingHash.update(buf[i]);
+			int expected = rollingHash.getHash();
+			// hash whole array at once
+			rollingHash.reset();
+			rollingHash.update(buf, 3, len);
+			assertEquals(expected, rollingHash.getHash());
+		}
+	}
+}
@@ -325,4 +325,187 @@ class ReplicateWholeFile extends Modifier {
 		FileChannel fch = raf.getChannel();
 		fch.transferFrom(fch, len, len);
 	}
-}
\ No newline at end of file
+}
+
+/* Append log lines to the end of the file */
+class LogAppend extends Modifier {
+	long alen = 1024 * 1024; // number of bytes appended
+
+	public LogAppend(String wd) {
+		super(wd);
+	}
+
+	public LogAppend(long l, String wd) {
+		super(wd);
+		alen = l;
+	}
+
+	@Override
+	String getDescription() {
+		return "Log append (" + alen + ")";
+	}
+
+	@Override
+	protected void modify(RandomAccessFile raf) throws IOException {
+		String levels[] = { "INFO ", "DEBUG", "WARN ", "ERROR" };
+		Random rand = new Random();
+		raf.seek(raf.length());
+		StringBuilder sb = new StringBuilder();
+		long remaining = alen;
+		long time = System.currentTimeMillis();
+		while (remaining > 0) {
+			sb.setLength(0);
+			while (sb.length() < 64 * 1024) {
+				time += rand.nextInt(50);
+				sb.append(time).append(' ').append(levels[rand.nextInt(levels.length)]).append(" worker-").append(rand.nextInt(16))
+						.append(" request ").append(rand.nextInt(1000000)).append(" completed in ").append(rand.nextInt(500)).append(" ms\n");
+			}
+			byte line[] = sb.toString().getBytes("US-ASCII");
+			int len = (int) Math.min(line.length, remaining);
+			raf.write(line, 0, len);
+			remaining -= len;
+		}
+	}
+}
+
+/* Rewrite randomly selected fixed size pages, like a database does */
+class PageRewrite extends Modifier {
+	int count = 16; // number of pages rewritten
+	int pageSize = 8 * 1024; // size of a page
+
+	public PageRewrite(String wd) {
+		super(wd);
+	}
+
+	public PageRewrite(int c, int p, String wd) {
+		super(wd);
+		count = c;
+		pageSize = p;
+	}
+
+	@Override
+	String getDescription() {
+		return "Page rewrite (" + count + ", " + pageSize + ")";
+	}
+
+	@Override
+	protected void modify(RandomAccessFile raf) throws IOException {
+		long pages = raf.length() / pageSize;
+		if (pages == 0)
+			return;
+		Random rand = new Random();
+		byte page[] = new byte[pageSize];
+		for (int i = 0; i < count; i++) {
+			raf.seek(randomPositiveLong(rand) % pages * pageSize);
+			rand.nextBytes(page);
+			raf.write(page);
+		}
+	}
+}
+
+/*
+ * Overwrite randomly selected runs of aligned blocks, like writes of a guest
+ * to a VM disk image
+ */
+class AlignedBlockChange extends Modifier {
+	int count = 16; // number of runs
+	int blockSize = 4 * 1024; // size of a disk block
+	int mblocks = 64; // max number of blocks per run
+
+	public AlignedBlockChange(String wd) {
+		super(wd);
+	}
+
+	public AlignedBlockChange(int c, int b, int m, String wd) {
+		super(wd);
+		count = c;
+		blockSize = b;
+		mblocks = m;
+	}
+
+	@Override
+	String getDescription() {
+		return "Aligned block change (" + count + ", " + blockSize + ", " + mblocks + ")";
+	}
+
+	@Override
+	protected void modify(RandomAccessFile raf) throws IOException {
+		long blocks = raf.length() / blockSize;
+		if (blocks == 0)
+			return;
+		Random rand = new Random();
+		byte block[] = new byte[blockSize];
+		for (int i = 0; i < count; i++) {
+			long start = randomPositiveLong(rand) % blocks;
+			long end = Math.min(blocks, start + rand.nextInt(mblocks) + 1);
+			raf.seek(start * blockSize);
+			for (long b = start; b < end; b++) {
+				rand.nextBytes(block);
+				raf.write(block);
+			}
+		}
+	}
+}
+
+/* Move a large region of the file to another position */
+class MoveRegion extends Modifier {
+	long mlen = 64 * 1024 * 1024; // max number of bytes moved
+
+	public MoveRegion(String wd) {
+		super(wd);
+	}
+
+	public MoveRegion(long l, String wd) {
+		super(wd);
+		mlen = l;
+	}
+
+	@Override
+	String getDescription() {
+		return "Move region (" + mlen + ")";
+	}
+
+	/*
+	 * Copy bytes from start to end of src to dst at position pos
+	 */
+	private long transfer(FileChannel src, long start, long end, FileChannel dst, long pos) throws IOException {
+		while (start < end) {
+			long n = src.transferTo(start, end - start, dst.position(pos));
+			start += n;
+			pos += n;
+		}
+		return pos;
+	}
+
+	@Override
+	protected void modify(RandomAccessFile raf) throws IOException {
+		long len = raf.length();
+		if (len < 2)
+			return;
+		Random rand = new Random();
+		long rlen = Math.min(mlen, len / 2); // length of moved region
+		long src = randomPositiveLong(rand) % (len - rlen + 1); // current position
+		long dst = randomPositiveLong(rand) % (len - rlen + 1); // new position
+
+		// temporary file to hold original data
+		RandomAccessFile tempFile = new RandomAccessFile(workingDir + "~", "rw");
+		FileChannel fch = raf.getChannel();
+		FileChannel tempch = tempFile.getChannel();
+		transfer(fch, 0, len, tempch, 0);
+
+		// write data around the region in new order
+		long pos;
+		if (dst <= src) {
+			pos = transfer(tempch, 0, dst, fch, 0);
+			pos = transfer(tempch, src, src + rlen, fch, pos);
+			pos = transfer(tempch, dst, src, fch, pos);
+		} else {
+			pos = transfer(tempch, 0, src, fch, 0);
+			pos = transfer(tempch, src + rlen, dst + rlen, fch, pos);
+			pos = transfer(tempch, src, src + rlen, fch, pos);
+		}
+		transfer(tempch, Math.max(src, dst) + rlen, len, fch, pos);
+		tempFile.close();
+		new File(workingDir + "~").delete(); // delete temporary file
+	}
+}
@@ -0,0 +1,169 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/*
+ * Signature index kept outside the heap. Each block is stored as a single
+ * long (weak hash in the upper 32 bits, block id in the lower 32 bits) in a
+ * direct buffer, sorted in place so that blocks with the same weak hash are
+ * adjacent. Strong hashes are not copied, they are read from the mapped
+ * signature files when needed. The heap usage of this index does not depend
+ * on the number of blocks, so the garbage collector never has to scan or
+ * copy it.
+ *
+ * The entries are split across buffers of at most 2^27 entries (1 GB), as a
+ * single direct buffer is limited to 2 GB. A bitmap with one bit per value of
+ * the upper FILTER_BITS bits of the (mixed) weak hash is checked before the
+ * sorted entries, like the tag table of rsync, so that most weak hashes
+ * without a block are rejected without a binary search.
+ */
+class OffHeapSigIndex extends SigIndex {
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+	private static final int CHUNK_BITS = 27; // log2 of entries per buffer
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+	private static final int FILTER_BITS = 24; // 2^24 bits, 2 MB
+
+	private final LongBuffer index[]; // sorted (weak hash, block id) pairs
+	private final LongBuffer filter; // weak hashes which may have a block
+	private final int entries; // number of indexed blocks
+
+	OffHeapSigIndex(ByteBuffer sigBufs[], int digestLen, byte zeroMd5[]) {
+		super(sigBufs, digestLen, zeroMd5);
+		int count = 0;
+		for (int id = 0; id < blockCount; id++) {
+			if (!isZeroBlock(id))
+				count++;
+		}
+		entries = count;
+		index = new LongBuffer[(int) (((long) entries + CHUNK_MASK) >>> CHUNK_BITS)];
+		for (int i = 0; i < index.length; i++) {
+			long len = Math.min(CHUNK_MASK + 1L, entries - ((long) i << CHUNK_BITS)); // entries in this buffer
+			index[i] = ByteBuffer.allocateDirect((int) (len * 8)).order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+		filter = ByteBuffer.allocateDirect((1 << FILTER_BITS) / 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+		int pos = 0;
+		for (int id = 0; id < blockCount; id++) {
+			if (!isZeroBlock(id)) {
+				int hash = hash(id);
+				put(pos++, ((long) hash << 32) | (id & 0xffffffffL));
+				int bit = filterBit(hash);
+				filter.put(bit >>> 6, filter.get(bit >>> 6) | (1L << bit));
+			}
+		}
+		sort(0, entries - 1);
+	}
+
+	private long get(int pos) {
+		return index[pos >>> CHUNK_BITS].get(pos & CHUNK_MASK);
+	}
+
+	private void put(int pos, long entry) {
+		index[pos >>> CHUNK_BITS].put(pos & CHUNK_MASK, entry);
+	}
+
+	/*
+	 * Get the bit of filter for given weak hash. The hash is mixed first, as
+	 * the upper bits of a rolling hash of similar blocks are not well spread.
+	 */
+	private static int filterBit(int hash) {
+		return (hash * 0x9e3779b9) >>> (32 - FILTER_BITS);
+	}
+
+	/*
+	 * Check the filter for given weak hash, false means that no block has
+	 * this weak hash
+	 */
+	private boolean mayContain(int hash) {
+		int bit = filterBit(hash);
+		return (filter.get(bit >>> 6) & (1L << bit)) != 0;
+	}
+
+	/*
+	 * Get position of the first entry with given weak hash, or of the entry
+	 * where it would be inserted if there is no such entry
+	 */
+	private int lowerBound(int hash) {
+		long key = (long) hash << 32;
+		int lo = 0, hi = entries;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (get(mid) < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	@Override
+	boolean contains(int hash) {
+		if (!mayContain(hash))
+			return false;
+		int pos = lowerBound(hash);
+		return pos < entries && (int) (get(pos) >> 32) == hash;
+	}
+
+	@Override
+	int find(int hash, byte md5[]) {
+		if (!mayContain(hash))
+			return -1;
+		for (int pos = lowerBound(hash); pos < entries; pos++) {
+			long entry = get(pos);
+			if ((int) (entry >> 32) != hash)
+				break;
+			int id = (int) entry;
+			if (strongHashEquals(id, md5))
+				return id;
+		}
+		return -1;
+	}
+
+	private void swap(int i, int j) {
+		long tmp = get(i);
+		put(i, get(j));
+		put(j, tmp);
+	}
+
+	/*
+	 * Sort index[lo..hi] in place. Quicksort with median of three pivot,
+	 * recursing into the smaller part only to keep the stack shallow.
+	 */
+	private void sort(int lo, int hi) {
+		while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+			int mid = (lo + hi) >>> 1;
+			if (get(mid) < get(lo))
+				swap(mid, lo);
+			if (get(hi) < get(lo))
+				swap(hi, lo);
+			if (get(hi) < get(mid))
+				swap(hi, mid);
+			long pivot = get(mid);
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (get(i) < pivot)
+					i++;
+				while (get(j) > pivot)
+					j--;
+				if (i <= j)
+					swap(i++, j--);
+			}
+			if (j - lo < hi - i) {
+				sort(lo, j);
+				lo = i;
+			} else {
+				sort(i, hi);
+				hi = j;
+			}
+		}
+		// insertion sort for small ranges
+		for (int i = lo + 1; i <= hi; i++) {
+			long entry = get(i);
+			int j = i - 1;
+			while (j >= lo && get(j) > entry) {
+				put(j + 1, get(j));
+				j--;
+			}
+			put(j + 1, entry);
+		}
+	}
+}
@@ -1,5 +1,13 @@
 public class RollingHash {
-	private final int X = 31;
+	private static final int X = 31;
+	// powers of X used to hash 8 bytes at a time in update(byte[], int, int),
+	// POW[i] = X^(8 - i)
+	private static final int POW[] = new int[9];
+	static {
+		POW[8] = 1;
+		for (int i = 7; i >= 0; i--)
+			POW[i] = POW[i + 1] * X;
+	}
 	private int XtoN;
 	private int hash;
 
@@ -25,9 +33,23 @@ public class RollingHash {
 		hash = X * hash + inByte - XtoN * outByte;
 	}
 
+	/*
+	 * Hash len bytes of arr starting at offset. Bytes are consumed 8 at a time
+	 * using precomputed powers of X, so the 8 products are independent of each
+	 * other and of the previous hash instead of forming one long chain of
+	 * multiply-adds. Integer arithmetic wraps around, so the result is
+	 * identical to hashing the bytes one by one.
+	 */
 	void update(byte[] arr, int offset, int len) {
-		for (int i = offset; i < offset + len; i++) {
-			hash = X * hash + arr[i];
+		int h = hash;
+		int i = offset, end = offset + len;
+		for (; i + 8 <= end; i += 8) {
+			h = POW[0] * h + POW[1] * arr[i] + POW[2] * arr[i + 1] + POW[3] * arr[i + 2] + POW[4] * arr[i + 3]
+					+ POW[5] * arr[i + 4] + POW[6] * arr[i + 5] + POW[7] * arr[i + 6] + arr[i + 7];
+		}
+		for (; i < end; i++) {
+			h = X * h + arr[i];
 		}
+		hash = h;
 	}
 }
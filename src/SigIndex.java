@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+
+/*
+ * Index over the block signatures stored in one or more (mapped) signature
+ * files. Block signatures are read straight from the signature files, an
+ * index only has to find the ids of blocks with a given weak hash. Blocks of
+ * all signature files are numbered one after the other, file by file, so a
+ * block id identifies both a signature file and a block in it. Blocks of zeros
+ * are not indexed, generateDeltaFile records them as holes.
+ */
+abstract class SigIndex {
+	protected final ByteBuffer sigBufs[]; // contents of signature files
+	protected final int digestLen; // length of strong hash
+	protected final int sigLen; // length of block signature
+	private final byte zeroMd5[]; // strong hash of a block of zeros
+	private final int firstId[]; // id of the first block of each file
+	final int blockCount; // number of blocks in all signature files
+
+	SigIndex(ByteBuffer sigBufs[], int digestLen, byte zeroMd5[]) {
+		this.sigBufs = sigBufs;
+		this.digestLen = digestLen;
+		this.zeroMd5 = zeroMd5;
+		sigLen = digestLen + 4;
+		firstId = new int[sigBufs.length + 1];
+		long count = 0;
+		for (int i = 0; i < sigBufs.length; i++) {
+			count += sigBufs[i].capacity() / sigLen;
+			// block ids are ints
+			if (count > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Too many blocks in signature files : " + count);
+			firstId[i + 1] = (int) count;
+		}
+		blockCount = firstId[sigBufs.length];
+	}
+
+	/*
+	 * Get number of blocks in given signature file
+	 */
+	int blockCount(int file) {
+		return firstId[file + 1] - firstId[file];
+	}
+
+	/*
+	 * Get index of the signature file containing the block with given id
+	 */
+	int file(int id) {
+		// find the last file whose first block id is <= id, empty files
+		// share their first block id with the next file
+		int lo = 0, hi = sigBufs.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (firstId[mid] <= id)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/*
+	 * Get id of a block within its own signature file
+	 */
+	int localId(int id) {
+		return id - firstId[file(id)];
+	}
+
+	/*
+	 * Get id of block localId of given signature file, or -1 if the file
+	 * does not have such a block
+	 */
+	int id(int file, int localId) {
+		int id = firstId[file] + localId;
+		return id < firstId[file + 1] ? id : -1;
+	}
+
+	/*
+	 * Get weak hash of the block with given id
+	 */
+	int hash(int id) {
+		int f = file(id);
+		return sigBufs[f].getInt((id - firstId[f]) * sigLen);
+	}
+
+	/*
+	 * Get strong hash of the block with given id
+	 */
+	byte[] strongHash(int id) {
+		int f = file(id);
+		int pos = (id - firstId[f]) * sigLen + 4;
+		byte md5[] = new byte[digestLen];
+		for (int i = 0; i < digestLen; i++)
+			md5[i] = sigBufs[f].get(pos + i);
+		return md5;
+	}
+
+	/*
+	 * Check if strong hash of the block with given id is equal to md5
+	 */
+	boolean strongHashEquals(int id, byte md5[]) {
+		int f = file(id);
+		int pos = (id - firstId[f]) * sigLen + 4;
+		for (int i = 0; i < digestLen; i++) {
+			if (sigBufs[f].get(pos + i) != md5[i])
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Check if the block with given id is a block of zeros
+	 */
+	boolean isZeroBlock(int id) {
+		// weak hash of zeros is 0
+		return hash(id) == 0 && strongHashEquals(id, zeroMd5);
+	}
+
+	/*
+	 * Check if there is at least one block with given weak hash
+	 */
+	abstract boolean contains(int hash);
+
+	/*
+	 * Find a block with given weak hash and strong hash, returns its id or -1
+	 * if there is no such block
+	 */
+	abstract int find(int hash, byte md5[]);
+}